@@ -13,21 +13,30 @@ public class Controller {
         int R = Integer.parseInt(args[1]);
         int timeout = Integer.parseInt(args[2]);
         int rebalancePeriod = Integer.parseInt(args[3]);
+        int W = args.length > 4 ? Integer.parseInt(args[4]) : R;
 
-        new Controller().start(cport, R, timeout, rebalancePeriod);
+        if (W < 1 || W > R) {
+            throw new IllegalArgumentException("Write quorum must be between 1 and R, got " + W);
+        }
+
+        new Controller().start(cport, R, W, timeout, rebalancePeriod);
     }
 
     private ServerSocket serverSocket;
     private final Map<Integer, Socket> dstores = new ConcurrentHashMap<>();
     private final Map<String, FileEntry> fileIndex = new ConcurrentHashMap<>();
     private final Map<String, Set<Integer>> reloadTracker = new ConcurrentHashMap<>();
-    private final Map<String, Set<Integer>> storeAcks = new ConcurrentHashMap<>();
     private final Map<String, Socket> storeClients = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> dstoreQueueDepth = new ConcurrentHashMap<>();
+    private final Set<Integer> saturatedDstores = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Integer> pendingTransfers = new ConcurrentHashMap<>();
     private final Object lock = new Object();
-    private int R, timeout, rebalancePeriod;
+    private int R, W, timeout, rebalancePeriod;
+    private int placementRotation;
 
-    public void start(int cport, int R, int timeout, int rebalancePeriod) throws IOException {
+    public void start(int cport, int R, int W, int timeout, int rebalancePeriod) throws IOException {
         this.R = R;
+        this.W = W;
         this.timeout = timeout;
         this.rebalancePeriod = rebalancePeriod;
         serverSocket = new ServerSocket(cport);
@@ -61,7 +70,7 @@ public class Controller {
                 disconnectedDstores.add(port);
             } else {
                 try {
-                    socket.getOutputStream().write(0);
+                    socket.getOutputStream().write('\n');
                 } catch (IOException e) {
                     disconnectedDstores.add(port);
                 }
@@ -71,6 +80,7 @@ public class Controller {
         synchronized (lock) {
             for (int port : disconnectedDstores) {
                 dstores.remove(port);
+                forgetDstoreLoad(port);
                 System.out.println("Dstore disconnected on port: " + port);
             }
             
@@ -87,6 +97,7 @@ public class Controller {
             List<Integer> currentDstores = fileEntry.dstores;
             
             currentDstores.removeAll(disconnectedDstores);
+            fileEntry.confirmed.removeAll(disconnectedDstores);
             
             if (currentDstores.size() < R && STATUS_STORE_COMPLETE.equals(fileEntry.status)) {
                 System.out.println("File " + filename + " is under-replicated after Dstore disconnection");
@@ -104,27 +115,15 @@ public class Controller {
                 if (command.startsWith(Protocol.JOIN_TOKEN)) {
                     int port = Integer.parseInt(command.split(" ")[1]);
                     dstores.put(port, socket);
+                    forgetDstoreLoad(port);
                     System.out.println("Dstore joined on port: " + port);
+                } else if (command.startsWith(Protocol.STATUS_TOKEN)) {
+                    handleStatus(command.split(" "), socket);
                 } else if (command.startsWith(Protocol.STORE_ACK_TOKEN)) {
                     String filename = command.split(" ")[1];
-                    int dstorePort = socket.getPort();
-                    synchronized (lock) {
-                        storeAcks.putIfAbsent(filename, new HashSet<>());
-                        storeAcks.get(filename).add(dstorePort);
-                        if (storeAcks.get(filename).size() == R) {
-                            Socket client = storeClients.get(filename);
-                            FileEntry entry = fileIndex.get(filename);
-                            if (entry != null) {
-                                entry.status = STATUS_STORE_COMPLETE;
-                            }
-                            if (client != null && !client.isClosed()) {
-                                PrintWriter clientOut = new PrintWriter(client.getOutputStream(), true);
-                                clientOut.println(Protocol.STORE_COMPLETE_TOKEN);
-                            }
-                            storeAcks.remove(filename);
-                            storeClients.remove(filename);
-                        }
-                    }
+                    handleStoreAck(filename, socket);
+                } else if (command.startsWith(Protocol.REBALANCE_COMPLETE_TOKEN)) {
+                    System.out.println("Rebalance complete from Dstore on port: " + dstorePortOf(socket));
                 } else {
                     handleClientRequest(command, in, out, socket);
                 }
@@ -133,6 +132,7 @@ public class Controller {
             for (Map.Entry<Integer, Socket> entry : new HashMap<>(dstores).entrySet()) {
                 if (entry.getValue() == socket) {
                     dstores.remove(entry.getKey());
+                    forgetDstoreLoad(entry.getKey());
                     System.out.println("Dstore disconnected on port: " + entry.getKey());
                 }
             }
@@ -143,6 +143,7 @@ public class Controller {
                 for (Map.Entry<Integer, Socket> entry : new HashMap<>(dstores).entrySet()) {
                     if (entry.getValue() == socket) {
                         dstores.remove(entry.getKey());
+                        forgetDstoreLoad(entry.getKey());
                         System.out.println("Dstore disconnected due to error on port: " + entry.getKey());
                     }
                 }
@@ -181,14 +182,166 @@ public class Controller {
         }
     }
 
-    private void handleStoreTimeout(String filename) {
+    private Integer dstorePortOf(Socket socket) {
+        for (Map.Entry<Integer, Socket> entry : dstores.entrySet()) {
+            if (entry.getValue() == socket) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    private void handleStatus(String[] parts, Socket dstoreSocket) {
+        Integer dstorePort = dstorePortOf(dstoreSocket);
+        if (dstorePort == null) {
+            return;
+        }
+
+        dstoreQueueDepth.put(dstorePort, Integer.parseInt(parts[1]));
+        if (Boolean.parseBoolean(parts[2])) {
+            if (saturatedDstores.add(dstorePort)) {
+                System.out.println("Dstore " + dstorePort + " is saturated");
+            }
+        } else if (saturatedDstores.remove(dstorePort)) {
+            System.out.println("Dstore " + dstorePort + " is no longer saturated");
+        }
+    }
+
+    private void forgetDstoreLoad(int port) {
+        dstoreQueueDepth.remove(port);
+        saturatedDstores.remove(port);
+        pendingTransfers.remove(port);
+    }
+
+    private void addPending(int port) {
+        pendingTransfers.merge(port, 1, Integer::sum);
+    }
+
+    private void releasePending(int port) {
+        pendingTransfers.computeIfPresent(port, (p, n) -> n > 1 ? n - 1 : null);
+    }
+
+    private void trackUploads(FileEntry entry, Collection<Integer> ports) {
+        for (int port : ports) {
+            if (entry.pending.add(port)) {
+                addPending(port);
+            }
+        }
+    }
+
+    private void releaseUploads(FileEntry entry) {
+        for (int port : entry.pending) {
+            releasePending(port);
+        }
+        entry.pending.clear();
+    }
+
+    /**
+     * Orders Dstore ports so unsaturated ones come first, then by the depth they last reported plus
+     * the transfers handed out since, which STATUS reports have not caught up with yet. Ties rotate
+     * between calls so a burst is spread over equally loaded Dstores. Must be called holding lock.
+     */
+    private void rankByLoad(List<Integer> ports) {
+        Set<Integer> saturated = new HashSet<>(saturatedDstores);
+        Map<Integer, Integer> load = new HashMap<>();
+        for (int port : ports) {
+            load.put(port, dstoreQueueDepth.getOrDefault(port, 0) + pendingTransfers.getOrDefault(port, 0));
+        }
+
+        Collections.sort(ports);
+        if (!ports.isEmpty()) {
+            Collections.rotate(ports, -Math.floorMod(placementRotation++, ports.size()));
+        }
+        ports.sort(Comparator.comparing((Integer port) -> saturated.contains(port))
+                .thenComparingInt(load::get));
+    }
+
+    private void handleStoreAck(String filename, Socket dstoreSocket) throws IOException {
         synchronized (lock) {
             FileEntry entry = fileIndex.get(filename);
-            if (entry != null && entry.status.equals(STATUS_STORE_IN_PROGRESS)) {
+            Integer dstorePort = dstorePortOf(dstoreSocket);
+            if (dstorePort == null) {
+                System.out.println("Ignoring STORE_ACK for " + filename + " from unknown Dstore");
+                return;
+            }
 
-                fileIndex.remove(filename);
+            if (entry != null && entry.pending.remove(dstorePort)) {
+                releasePending(dstorePort);
+            }
+
+            boolean storing = entry != null
+                    && (STATUS_STORE_IN_PROGRESS.equals(entry.status) || STATUS_STORE_COMPLETE.equals(entry.status));
+            if (storing && !entry.dstores.contains(dstorePort)
+                    && STATUS_STORE_COMPLETE.equals(entry.status) && entry.confirmed.size() < R) {
+                // Late copy from a straggler while the file is short of R confirmed copies: keep it and
+                // give up an unconfirmed repair target instead, if one was assigned in the meantime
+                if (entry.dstores.size() >= R) {
+                    for (int port : entry.dstores) {
+                        if (!entry.confirmed.contains(port)) {
+                            entry.dstores.remove(Integer.valueOf(port));
+                            if (entry.pending.remove(port)) {
+                                releasePending(port);
+                            }
+                            System.out.println("Cancelled repair of " + filename + " on Dstore " + port);
+                            break;
+                        }
+                    }
+                }
+                entry.dstores.add(dstorePort);
+                entry.confirmed.add(dstorePort);
+                System.out.println("Accepted late replica of " + filename + " on Dstore " + dstorePort);
+                return;
+            }
+
+            if (!storing || !entry.dstores.contains(dstorePort)) {
+                // The file was removed or already has R copies, so this copy would be orphaned on disk
+                PrintWriter dOut = new PrintWriter(dstoreSocket.getOutputStream(), true);
+                dOut.println(Protocol.REMOVE_TOKEN + " " + filename);
+                System.out.println("Discarding late replica of " + filename + " on Dstore " + dstorePort);
+                return;
+            }
+
+            entry.confirmed.add(dstorePort);
+
+            if (STATUS_STORE_IN_PROGRESS.equals(entry.status) && entry.confirmed.size() >= W) {
+                entry.status = STATUS_STORE_COMPLETE;
+                Socket client = storeClients.remove(filename);
+                if (client != null && !client.isClosed()) {
+                    PrintWriter clientOut = new PrintWriter(client.getOutputStream(), true);
+                    clientOut.println(Protocol.STORE_COMPLETE_TOKEN);
+                }
+            }
+        }
+    }
 
-                storeAcks.remove(filename);
+    private void runAfterTimeout(Runnable task) {
+        new Thread(() -> {
+            try {
+                Thread.sleep(timeout);
+                task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }).start();
+    }
+
+    private void handleStoreTimeout(String filename, FileEntry expected) {
+        synchronized (lock) {
+            releaseUploads(expected);
+
+            FileEntry entry = fileIndex.get(filename);
+            if (entry == null || entry != expected) {
+                return;
+            }
+
+            if (STATUS_STORE_COMPLETE.equals(entry.status)) {
+                List<Integer> stragglers = dropUnconfirmedReplicas(filename, entry);
+                if (!stragglers.isEmpty()) {
+                    repairReplicas(filename, entry, stragglers);
+                }
+            } else if (entry.status.equals(STATUS_STORE_IN_PROGRESS)) {
+
+                fileIndex.remove(filename);
 
                 Socket client = storeClients.get(filename);
                 if (client != null && !client.isClosed()) {
@@ -204,6 +357,84 @@ public class Controller {
         }
     }
 
+    /**
+     * Drops replicas that have not acknowledged the file by the deadline and returns their ports.
+     * They are not sent REMOVE here: a straggler may still be waiting to write the file, so any copy
+     * it finishes is handled when its late STORE_ACK arrives.
+     */
+    private List<Integer> dropUnconfirmedReplicas(String filename, FileEntry entry) {
+        List<Integer> unconfirmed = new ArrayList<>();
+        for (int port : entry.dstores) {
+            if (!entry.confirmed.contains(port)) {
+                unconfirmed.add(port);
+            }
+        }
+        entry.dstores.removeAll(unconfirmed);
+
+        for (int port : unconfirmed) {
+            System.out.println("Dstore " + port + " missed the store deadline for: " + filename);
+        }
+        return unconfirmed;
+    }
+
+    /**
+     * Asks a confirmed replica to copy the file to fresh Dstores until R replicas are assigned again.
+     * Stragglers are not reused as targets since they may still be writing the original upload.
+     */
+    private void repairReplicas(String filename, FileEntry entry, List<Integer> stragglers) {
+        Integer source = null;
+        for (int port : entry.confirmed) {
+            if (dstores.containsKey(port)) {
+                source = port;
+                break;
+            }
+        }
+
+        List<Integer> candidates = new ArrayList<>();
+        for (int port : dstores.keySet()) {
+            if (!entry.dstores.contains(port) && !stragglers.contains(port) && !saturatedDstores.contains(port)) {
+                candidates.add(port);
+            }
+        }
+        rankByLoad(candidates);
+        List<Integer> targets = new ArrayList<>(candidates.subList(0, Math.min(candidates.size(), R - entry.dstores.size())));
+
+        if (source == null || targets.isEmpty()) {
+            System.out.println("File " + filename + " is under-replicated, no Dstore available for repair");
+            return;
+        }
+
+        StringBuilder sb = new StringBuilder(Protocol.REBALANCE_TOKEN);
+        sb.append(" 1 ").append(filename).append(" ").append(targets.size());
+        for (int p : targets) sb.append(" ").append(p);
+        sb.append(" 0");
+
+        try {
+            PrintWriter dOut = new PrintWriter(dstores.get(source).getOutputStream(), true);
+            dOut.println(sb.toString());
+        } catch (IOException e) {
+            System.err.println("Error requesting replica repair: " + e.getMessage());
+            return;
+        }
+
+        entry.dstores.addAll(targets);
+        trackUploads(entry, targets);
+        System.out.println("Repairing " + filename + " from Dstore " + source + " to " + targets);
+
+        runAfterTimeout(() -> {
+            synchronized (lock) {
+                releaseUploads(entry);
+                if (fileIndex.get(filename) != entry || !STATUS_STORE_COMPLETE.equals(entry.status)) {
+                    return;
+                }
+                dropUnconfirmedReplicas(filename, entry);
+                if (entry.confirmed.size() < R) {
+                    System.out.println("File " + filename + " is under-replicated after repair");
+                }
+            }
+        });
+    }
+
     private void handleStore(String filename, int filesize, PrintWriter out, Socket clientSocket) {
         synchronized (lock) {
             FileEntry existingEntry = fileIndex.get(filename);
@@ -219,16 +450,11 @@ public class Controller {
                     out.println(sb.toString());
     
                     storeClients.put(filename, clientSocket);
-                    storeAcks.put(filename, new HashSet<>());
+                    existingEntry.confirmed.clear();
+                    releaseUploads(existingEntry);
+                    trackUploads(existingEntry, selectedPorts);
     
-                    new Thread(() -> {
-                        try {
-                            Thread.sleep(timeout);
-                            handleStoreTimeout(filename);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-                    }).start();
+                    runAfterTimeout(() -> handleStoreTimeout(filename, existingEntry));
                     return;
                 }
             }
@@ -238,24 +464,30 @@ public class Controller {
                 return;
             }
     
-            List<Integer> selectedPorts = new ArrayList<>(dstores.keySet()).subList(0, R);
-            fileIndex.put(filename, new FileEntry(filesize, selectedPorts, STATUS_STORE_IN_PROGRESS));
+            List<Integer> candidates = new ArrayList<>();
+            for (int port : dstores.keySet()) {
+                if (!saturatedDstores.contains(port)) {
+                    candidates.add(port);
+                }
+            }
+            if (candidates.size() < R) {
+                out.println(Protocol.ERROR_DSTORES_BUSY_TOKEN);
+                return;
+            }
+
+            rankByLoad(candidates);
+            List<Integer> selectedPorts = new ArrayList<>(candidates.subList(0, R));
+            FileEntry entry = new FileEntry(filesize, selectedPorts, STATUS_STORE_IN_PROGRESS);
+            fileIndex.put(filename, entry);
+            trackUploads(entry, selectedPorts);
     
             StringBuilder sb = new StringBuilder(Protocol.STORE_TO_TOKEN);
             for (int p : selectedPorts) sb.append(" ").append(p);
             out.println(sb.toString());
     
-            storeAcks.put(filename, new HashSet<>());
             storeClients.put(filename, clientSocket);
     
-            new Thread(() -> {
-                try {
-                    Thread.sleep(timeout);
-                    handleStoreTimeout(filename);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }).start();
+            runAfterTimeout(() -> handleStoreTimeout(filename, entry));
         }
     }
     
@@ -268,17 +500,28 @@ public class Controller {
             }
             
             reloadTracker.putIfAbsent(clientId, new HashSet<>());
+            List<Integer> replicas = new ArrayList<>(entry.confirmed);
+            rankByLoad(replicas);
             boolean dstoreFound = false;
-            for (int port : entry.dstores) {
-                if (!reloadTracker.get(clientId).contains(port)) {
-                    reloadTracker.get(clientId).add(port);
-                    out.println(Protocol.LOAD_FROM_TOKEN + " " + port + " " + entry.size);
-                    dstoreFound = true;
-                    break;
+            boolean dstoreBusy = false;
+            for (int port : replicas) {
+                if (reloadTracker.get(clientId).contains(port)) continue;
+                if (saturatedDstores.contains(port)) {
+                    dstoreBusy = true;
+                    continue;
                 }
+                reloadTracker.get(clientId).add(port);
+                out.println(Protocol.LOAD_FROM_TOKEN + " " + port + " " + entry.size);
+                // Loads are never acknowledged, so count the download against the Dstore for one timeout
+                addPending(port);
+                runAfterTimeout(() -> releasePending(port));
+                dstoreFound = true;
+                break;
             }
             
-            if (!dstoreFound) {
+            if (!dstoreFound && dstoreBusy) {
+                out.println(Protocol.ERROR_DSTORES_BUSY_TOKEN);
+            } else if (!dstoreFound) {
                 out.println(Protocol.ERROR_LOAD_TOKEN);
                 reloadTracker.remove(clientId);
             }
@@ -372,6 +615,10 @@ public class Controller {
         int size;
         List<Integer> dstores;
         String status;
+        // Replicas that have acknowledged a full copy; only these are handed out for LOAD.
+        final Set<Integer> confirmed = new LinkedHashSet<>();
+        // Replicas sent an upload that has not been acknowledged yet; each is counted in pendingTransfers.
+        final Set<Integer> pending = new HashSet<>();
 
         FileEntry(int size, List<Integer> dstores, String status) {
             this.size = size;
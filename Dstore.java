@@ -1,13 +1,34 @@
 import java.io.*;
 import java.net.*;
 import java.nio.file.Files;
+import java.util.concurrent.*;
 
 public class Dstore {
+    private static final int DEFAULT_WORKERS = 8;
+    private static final int DEFAULT_QUEUE_LIMIT = 16;
+    private static final int STATUS_INTERVAL_MS = 1000;
+
+    private static ThreadPoolExecutor workers;
+    private static int saturationThreshold;
+    private static boolean lastReportedSaturated;
+
     public static void main(String[] args) throws Exception {
         int port = Integer.parseInt(args[0]);
         int cport = Integer.parseInt(args[1]);
         int timeout = Integer.parseInt(args[2]);
         String folder = args[3];
+        int workerCount = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_WORKERS;
+        int queueLimit = args.length > 5 ? Integer.parseInt(args[5]) : DEFAULT_QUEUE_LIMIT;
+
+        if (workerCount < 1 || queueLimit < 1) {
+            throw new IllegalArgumentException("Workers and queue limit must be at least 1, got "
+                    + workerCount + " and " + queueLimit);
+        }
+
+        // Report saturation once the queue is three quarters full, before connections start being rejected
+        saturationThreshold = Math.max(1, queueLimit * 3 / 4);
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit));
 
         File folderDir = new File(folder);
         if (!folderDir.exists()) {
@@ -27,7 +48,7 @@ public class Dstore {
 
         Thread controllerThread = new Thread(() -> {
             try {
-                handleControllerMessages(controller, folder, timeout);
+                handleControllerMessages(controller, finalControllerOut, folder, timeout);
             } catch (Exception e) {
                 System.err.println("Controller message handler exited: " + e.getMessage());
             }
@@ -35,16 +56,71 @@ public class Dstore {
         controllerThread.setDaemon(true);
         controllerThread.start();
 
+        Thread statusThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(STATUS_INTERVAL_MS);
+                    reportStatus(finalControllerOut, false);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+        statusThread.setDaemon(true);
+        statusThread.start();
+
         while (true) {
             try {
                 Socket client = serverSocket.accept();
-                new Thread(() -> handleClient(client, finalControllerOut, folder)).start();
+                try {
+                    workers.execute(() -> {
+                        try {
+                            handleClient(client, finalControllerOut, folder);
+                        } finally {
+                            reportStatus(finalControllerOut, true);
+                        }
+                    });
+                    reportStatus(finalControllerOut, true);
+                } catch (RejectedExecutionException e) {
+                    rejectBusy(client);
+                    reportStatus(finalControllerOut, false);
+                }
             } catch (IOException e) {
                 System.err.println("Error accepting client connection: " + e.getMessage());
             }
         }
     }
 
+    /**
+     * Sends STATUS depth saturated to the Controller, where depth counts running and queued
+     * connections. The Dstore counts as saturated once the worker queue reaches its high-water mark. With onlyOnChange set, the report is skipped unless
+     * saturation flipped since the last one; the periodic report always goes out.
+     */
+    private static synchronized void reportStatus(PrintWriter controllerOut, boolean onlyOnChange) {
+        int queued = workers.getQueue().size();
+        boolean saturated = queued >= saturationThreshold;
+        if (onlyOnChange && saturated == lastReportedSaturated) {
+            return;
+        }
+        lastReportedSaturated = saturated;
+        int depth = workers.getActiveCount() + queued;
+        controllerOut.println(Protocol.STATUS_TOKEN + " " + depth + " " + saturated);
+    }
+
+    /**
+     * Closes a connection the worker pool has no room for. Nothing is written, since the command is
+     * unknown and a LOAD_DATA client would take any reply as file content.
+     */
+    private static void rejectBusy(Socket client) {
+        System.out.println("Worker queue full, rejecting connection from " + client.getRemoteSocketAddress());
+        try {
+            client.close();
+        } catch (IOException e) {
+            System.err.println("Error rejecting busy connection: " + e.getMessage());
+        }
+    }
+
     private static void clearFolder(File folder) {
         if (folder.exists()) {
             File[] files = folder.listFiles();
@@ -58,11 +134,9 @@ public class Dstore {
         }
     }
 
-    private static void handleControllerMessages(Socket controller, String folder, int timeout) {
+    private static void handleControllerMessages(Socket controller, PrintWriter controllerOut, String folder, int timeout) {
         try (BufferedReader in = new BufferedReader(new InputStreamReader(controller.getInputStream()))) {
 
-            PrintWriter controllerOut = new PrintWriter(controller.getOutputStream(), true);
-
             String command;
             while (true) {
                 try {
@@ -74,12 +148,20 @@ public class Dstore {
                         break;
                     }
 
+                    // Empty lines are the Controller's connection heartbeat
+                    if (command.isEmpty()) {
+                        continue;
+                    }
+
                     System.out.println("Received from Controller: " + command);
 
                     if (command.startsWith(Protocol.LIST_TOKEN)) {
                         handleListRequest(controllerOut, folder);
                     } else if (command.startsWith(Protocol.REMOVE_TOKEN)) {
                         handleRemoveRequest(controllerOut, command, folder);
+                    } else if (command.startsWith(Protocol.REBALANCE_TOKEN)) {
+                        final String rebalanceCommand = command;
+                        new Thread(() -> handleRebalanceRequest(controllerOut, rebalanceCommand, folder, timeout)).start();
                     }
 
                 } catch (SocketTimeoutException e) {
@@ -136,6 +218,63 @@ public class Dstore {
         }
     }
 
+    private static void handleRebalanceRequest(PrintWriter controllerOut, String command, String folder, int timeout) {
+        try {
+            String[] parts = command.split(" ");
+            int i = 1;
+            int filesToSend = Integer.parseInt(parts[i++]);
+            for (int f = 0; f < filesToSend; f++) {
+                String filename = parts[i++];
+                int targetCount = Integer.parseInt(parts[i++]);
+                for (int t = 0; t < targetCount; t++) {
+                    sendFileToDstore(filename, Integer.parseInt(parts[i++]), folder, timeout);
+                }
+            }
+
+            int filesToRemove = Integer.parseInt(parts[i++]);
+            for (int f = 0; f < filesToRemove; f++) {
+                File file = new File(folder, parts[i++]);
+                if (file.exists()) {
+                    file.delete();
+                }
+            }
+
+            controllerOut.println(Protocol.REBALANCE_COMPLETE_TOKEN);
+            System.out.println("Sent REBALANCE_COMPLETE to Controller");
+        } catch (RuntimeException e) {
+            System.err.println("Error handling rebalance request: " + e.getMessage());
+        }
+    }
+
+    private static void sendFileToDstore(String filename, int port, String folder, int timeout) {
+        File file = new File(folder, filename);
+        if (!file.exists()) {
+            System.err.println("Cannot send missing file: " + filename);
+            return;
+        }
+
+        try (Socket dstore = new Socket("localhost", port)) {
+            dstore.setSoTimeout(timeout);
+            byte[] data = Files.readAllBytes(file.toPath());
+            BufferedReader in = new BufferedReader(new InputStreamReader(dstore.getInputStream()));
+            PrintWriter out = new PrintWriter(dstore.getOutputStream(), true);
+
+            out.println(Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + data.length);
+            String reply = in.readLine();
+            if (!Protocol.ACK_TOKEN.equals(reply)) {
+                System.err.println("No ACK from Dstore " + port + " for: " + filename);
+                return;
+            }
+
+            OutputStream outStream = dstore.getOutputStream();
+            outStream.write(data);
+            outStream.flush();
+            System.out.println("Sent " + filename + " to Dstore " + port);
+        } catch (IOException e) {
+            System.err.println("Error sending " + filename + " to Dstore " + port + ": " + e.getMessage());
+        }
+    }
+
     private static void handleClient(Socket socket, PrintWriter controllerOut, String folder) {
         try {
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
@@ -148,7 +287,7 @@ public class Dstore {
 
             System.out.println("Received from Client: " + cmd);
 
-            if (cmd.startsWith(Protocol.STORE_TOKEN)) {
+            if (cmd.startsWith(Protocol.STORE_TOKEN) || cmd.startsWith(Protocol.REBALANCE_STORE_TOKEN)) {
                 handleStoreRequest(cmd, out, inStream, controllerOut, folder);
             } else if (cmd.startsWith(Protocol.LOAD_DATA_TOKEN)) {
                 handleLoadDataRequest(cmd, outStream, socket, folder);
@@ -25,6 +25,7 @@ public class Protocol {
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
 	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+	public final static String ERROR_DSTORES_BUSY_TOKEN = "ERROR_DSTORES_BUSY";
 	
 	// messages sent by Dstores
 	public final static String ACK_TOKEN = "ACK";
@@ -33,4 +34,5 @@ public class Protocol {
 	public final static String JOIN_TOKEN = "JOIN";
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String STATUS_TOKEN = "STATUS";
 }